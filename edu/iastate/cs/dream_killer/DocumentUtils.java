@@ -113,4 +113,67 @@ public class DocumentUtils {
 
         return shingles;
     }
+
+
+    /**
+     * Shingle a document the same way as {@link #shingleDocument(int, String)}
+     * but add a 64 bit hash of each shingle to the given set instead of
+     * keeping the shingle text on the heap.
+     *
+     * @param numTerms the number of terms per n-gram
+     * @param document the document to shingle
+     * @param shingles the set to add shingle hashes to
+     */
+    public static void hashShingles(int numTerms, String document, ShingleHashSet shingles) {
+        // Ring buffer of the most recent term hashes, oldest at numTermsSeen % numTerms
+        long[] currentShingle = new long[numTerms];
+        int numTermsSeen = 0;
+        Scanner documentScanner = new Scanner(document);
+
+        while (documentScanner.hasNext()) {
+            currentShingle[numTermsSeen % numTerms] = hashTerm(documentScanner.next().toLowerCase());
+            numTermsSeen++;
+            if (numTermsSeen < numTerms)
+                continue;
+
+            long shingleHash = 0;
+            for (int i = 0; i < numTerms; i++)
+                shingleHash = (shingleHash * 0x100000001B3L) ^ currentShingle[(numTermsSeen + i) % numTerms];
+
+            shingles.add(mixHash(shingleHash));
+        }
+    }
+
+
+    /**
+     * Hash a single term using 64 bit FNV-1a
+     *
+     * @param term the term to hash
+     * @return the hash of the term
+     */
+    private static long hashTerm(String term) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < term.length(); i++) {
+            hash ^= term.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+
+        return hash;
+    }
+
+
+    /**
+     * Spread the bits of a hash using the MurmurHash3 finalizer
+     *
+     * @param hash the hash to mix
+     * @return the mixed hash
+     */
+    private static long mixHash(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
 }
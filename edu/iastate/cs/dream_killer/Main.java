@@ -77,29 +77,35 @@ public class Main {
 
         // Filter files to the relevant submissions
         List<Path> filePaths = DocumentUtils.filterPathsByFilename(allFilePaths, filename);
-        MinHashMatrix.Builder matrixBuilder = MinHashMatrix.createBuilder();
         Map<Integer, String> documentIdStudentMap = new HashMap<>();
 
-        // Read all relevant files
-        for (int i = 0; i < filePaths.size(); i++) {
-            displayLine(String.format("Reading files (%d/%d)", i, filePaths.size()));
-
-            String document = new String(Files.readAllBytes(filePaths.get(i)));
-            document = DocumentUtils.stripComments(document);
-            Set<String> fileTerms = DocumentUtils.shingleDocument(NUM_NGRAM_TERMS, document);
+        // Shingle hashes and signatures for the submission live off-heap until clustered
+        try (OffHeapArena arena = new OffHeapArena()) {
+            MinHashMatrix.OffHeapBuilder matrixBuilder = MinHashMatrix.createOffHeapBuilder(arena);
+            ShingleHashSet fileShingles = new ShingleHashSet(arena);
+
+            // Read all relevant files
+            for (int i = 0; i < filePaths.size(); i++) {
+                displayLine(String.format("Reading files (%d/%d)", i, filePaths.size()));
+
+                String document = new String(Files.readAllBytes(filePaths.get(i)));
+                document = DocumentUtils.stripComments(document);
+                fileShingles.clear();
+                DocumentUtils.hashShingles(NUM_NGRAM_TERMS, document, fileShingles);
+
+                int documentId = matrixBuilder.addDocument(fileShingles);
+                String studentName = DocumentUtils.leastCommonPathName(
+                        filePaths.get(i),
+                        filePaths.get((i + 1) % filePaths.size()));
+                documentIdStudentMap.put(documentId, studentName);
+            }
 
-            int documentId = matrixBuilder.addDocument(fileTerms);
-            String studentName = DocumentUtils.leastCommonPathName(
-                    filePaths.get(i),
-                    filePaths.get((i + 1) % filePaths.size()));
-            documentIdStudentMap.put(documentId, studentName);
+            // Build the matrix from read files
+            displayLine(String.format("%d files read\n", filePaths.size()));
+            System.out.println("Generating MinHash matrix...");
+            MinHashMatrix matrix = matrixBuilder.build(NUM_PERMUTATIONS);
+            clusterSubmissions(filename, documentIdStudentMap, matrix);
         }
-
-        // Build the matrix from read files
-        displayLine(String.format("%d files read\n", filePaths.size()));
-        System.out.println("Generating MinHash matrix...");
-        MinHashMatrix matrix = matrixBuilder.build(NUM_PERMUTATIONS);
-        clusterSubmissions(filename, documentIdStudentMap, matrix);
     }
 
 
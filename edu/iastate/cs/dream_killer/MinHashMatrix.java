@@ -1,5 +1,7 @@
 package edu.iastate.cs.dream_killer;
 
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -11,26 +13,38 @@ import java.util.stream.Stream;
  */
 public class MinHashMatrix {
 
-    /** Immutable mapping of document id to the document's MinHash signature */
-    private final List<List<Integer>> mDocumentSignatures;
+    /** Document MinHash signatures stored row by row, indexed by document id */
+    private final IntBuffer mDocumentSignatures;
+
+    /** Number of documents in the MinHash matrix */
+    private final int mNumDocuments;
 
     /** Number of permuataions in the MinHash matrix */
     private final int mNumPermutations;
 
+    /** Arena owning the signatures, or null if they live on the heap */
+    private final OffHeapArena mArena;
+
     /**
-     * Constructor used by the builder to create the matrix
+     * Constructor used by the builders to create the matrix
      *
      * @param documentSignatures the document MinHash signatures of the matrix
+     * @param numDocuments the number of documents in the matrix
      * @param numPermutations the number of permutations used when building the matrix
+     * @param arena the arena owning the signatures, or null for heap signatures
      */
-    private MinHashMatrix(List<List<Integer>> documentSignatures, int numPermutations) {
+    private MinHashMatrix(IntBuffer documentSignatures, int numDocuments, int numPermutations, OffHeapArena arena) {
         mDocumentSignatures = documentSignatures;
+        mNumDocuments = numDocuments;
         mNumPermutations = numPermutations;
+        mArena = arena;
     }
 
 
     /**
-     * Create a builder for the MinHash matrix
+     * Create a builder for the MinHash matrix keeping every term on the heap.
+     * Main uses {@link #createOffHeapBuilder(OffHeapArena)}, this remains for
+     * callers that already have each document's terms as a set of strings.
      *
      * @return the new Builder
      */
@@ -40,17 +54,46 @@ public class MinHashMatrix {
 
 
     /**
-     * Return the calculated signature for a given document id
+     * Create a builder keeping shingle hashes and signatures in off-heap
+     * memory. The resulting matrix may only be used while the arena is open.
+     *
+     * @param arena the arena to allocate from
+     * @return the new OffHeapBuilder
+     */
+    public static OffHeapBuilder createOffHeapBuilder(OffHeapArena arena) {
+        return new OffHeapBuilder(arena);
+    }
+
+
+    /**
+     * Return the calculated signature for a given document id. The list is an
+     * unmodifiable view of the matrix, so for a matrix built off-heap it is
+     * only valid while the arena is open.
      *
      * @param documentId the id of the document
      * @return the minhash signature for the document
      * @throws IllegalArgumentException if document id doesn't exist
+     * @throws IllegalStateException if the owning arena has been closed, also
+     *                               thrown by the returned list afterwards
      */
     public List<Integer> getSignatureForDocument(int documentId) {
-        if (documentId >= mDocumentSignatures.size())
-            throw new IllegalArgumentException("Invalid document id");
+        final int rowStart = signatureOffset(documentId);
+
+        return new AbstractList<Integer>() {
+            @Override
+            public Integer get(int index) {
+                if (index < 0 || index >= mNumPermutations)
+                    throw new IndexOutOfBoundsException("Invalid permutation " + index);
+
+                ensureAccessible();
+                return mDocumentSignatures.get(rowStart + index);
+            }
 
-        return mDocumentSignatures.get(documentId);
+            @Override
+            public int size() {
+                return mNumPermutations;
+            }
+        };
     }
 
 
@@ -70,24 +113,27 @@ public class MinHashMatrix {
      * @return the number of documents
      */
     public int getNumDocuments() {
-        return mDocumentSignatures.size();
+        return mNumDocuments;
     }
 
 
     /**
-     * Approximates jaccard similarity between two documents
+     * Approximates jaccard similarity between two documents. For a matrix
+     * built off-heap this is only valid while the arena is open.
      *
      * @param document1 the id of the first document
      * @param document2 the id of the second document
      * @return the jaccard similarity in the range of 0..1
+     * @throws IllegalArgumentException if either document id doesn't exist
+     * @throws IllegalStateException if the owning arena has been closed
      */
     public double estimateJaccardSimilarity(int document1, int document2) {
-        List<Integer> doc1Signature = getSignatureForDocument(document1);
-        List<Integer> doc2Signature = getSignatureForDocument(document2);
+        int doc1Start = signatureOffset(document1);
+        int doc2Start = signatureOffset(document2);
 
         int numSame = 0;
-        for (int i = 0; i < doc1Signature.size(); i++) {
-            if (doc1Signature.get(i).equals(doc2Signature.get(i)))
+        for (int i = 0; i < mNumPermutations; i++) {
+            if (mDocumentSignatures.get(doc1Start + i) == mDocumentSignatures.get(doc2Start + i))
                 numSame++;
         }
 
@@ -95,6 +141,34 @@ public class MinHashMatrix {
     }
 
 
+    /**
+     * Find where a document's signature starts in the signature buffer
+     *
+     * @param documentId the id of the document
+     * @return the index of the first element of the signature
+     * @throws IllegalArgumentException if document id doesn't exist
+     * @throws IllegalStateException if the owning arena has been closed
+     */
+    private int signatureOffset(int documentId) {
+        if (documentId < 0 || documentId >= mNumDocuments)
+            throw new IllegalArgumentException("Invalid document id");
+
+        ensureAccessible();
+        return documentId * mNumPermutations;
+    }
+
+
+    /**
+     * Make sure the signatures have not been released with their arena
+     *
+     * @throws IllegalStateException if the owning arena has been closed
+     */
+    private void ensureAccessible() {
+        if (mArena != null)
+            mArena.ensureOpen();
+    }
+
+
     /**
      * Builder to be used when constructing the matrix. This is used so that we
      * can easily create an immutable MinHash matrix.
@@ -153,17 +227,17 @@ public class MinHashMatrix {
 
             // Create signatures for each document
             Map<String, Integer> termMap = mapTerms(mTermSet);
-            List<List<Integer>> minHashSignatures = new ArrayList<>();
+            IntBuffer minHashSignatures = IntBuffer.allocate(Math.multiplyExact(mDocumentTerms.size(), numPermutations));
 
             for (Set<String> document : mDocumentTerms) {
                 List<Integer> minHashSignature = permutationFunctions.stream()
                         .map((function) -> minHash(document, termMap, function))
                         .collect(Collectors.toList());
 
-                minHashSignatures.add(Collections.unmodifiableList(minHashSignature));
+                minHashSignature.forEach(minHashSignatures::put);
             }
 
-            return new MinHashMatrix(Collections.unmodifiableList(minHashSignatures), numPermutations);
+            return new MinHashMatrix(minHashSignatures, mDocumentTerms.size(), numPermutations, null);
         }
 
 
@@ -209,6 +283,101 @@ public class MinHashMatrix {
     }
 
 
+    /**
+     * Builder keeping the deduplicated shingle hashes of each document and
+     * the resulting signatures in arena memory, so heap usage does not grow
+     * with the number or size of documents. Shingles are identified by their
+     * 64 bit hash instead of a global term mapping.
+     */
+    public static class OffHeapBuilder {
+
+        /** Arena holding shingle hashes and signatures */
+        private final OffHeapArena mArena;
+
+        /** Mapping of document id to the document's distinct shingle hashes */
+        private final List<LongBuffer> mDocumentHashes;
+
+
+        /**
+         * Construct a new OffHeapBuilder
+         *
+         * @param arena the arena to allocate from
+         */
+        private OffHeapBuilder(OffHeapArena arena) {
+            mArena = arena;
+            mDocumentHashes = new ArrayList<>();
+        }
+
+
+        /**
+         * Add a new document to the builder. The hashes are copied into the
+         * arena so the set may be cleared and reused for the next document.
+         *
+         * @param shingles the distinct shingle hashes of the document
+         * @return a unique ID for the document
+         * @throws IllegalStateException if the arena has been closed
+         */
+        public int addDocument(ShingleHashSet shingles) {
+            mArena.ensureOpen();
+            if (shingles.isEmpty()) {
+                throw new IllegalArgumentException("Cannot add empty document");
+            }
+
+            LongBuffer hashes = mArena.allocate((long) shingles.size() * Long.BYTES).asLongBuffer();
+            shingles.copyTo(hashes);
+            hashes.flip();
+
+            int id = mDocumentHashes.size();
+            mDocumentHashes.add(hashes);
+            return id;
+        }
+
+
+        /**
+         * Build a MinHash matrix using the documents added to the builder
+         *
+         * @param  numPermutations the number of permutations to use in the matrix
+         * @return the constructed matrix, valid until the arena is closed
+         * @throws IllegalArgumentException if the signatures cannot fit in one buffer
+         * @throws IllegalStateException if the arena has been closed
+         */
+        public MinHashMatrix build(int numPermutations) {
+            mArena.ensureOpen();
+
+            final Random randomGenerator = new Random();
+
+            // Create the necessary number of permutation functions
+            List<PermutationFunction> permutationFunctions = Stream
+                    .generate(() -> new PermutationFunction(randomGenerator))
+                    .limit(numPermutations)
+                    .collect(Collectors.toList());
+
+
+            // Signatures are stored in a single buffer, which is limited to 2GB
+            long numBytes = (long) mDocumentHashes.size() * numPermutations * Integer.BYTES;
+            if (numBytes > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Too many documents and permutations for a single matrix");
+
+            IntBuffer minHashSignatures = mArena.allocate(numBytes).asIntBuffer();
+            int[] minHashSignature = new int[numPermutations];
+
+            for (LongBuffer document : mDocumentHashes) {
+                Arrays.fill(minHashSignature, Integer.MAX_VALUE);
+
+                for (int i = 0; i < document.limit(); i++) {
+                    long hash = document.get(i);
+                    for (int j = 0; j < numPermutations; j++)
+                        minHashSignature[j] = Math.min(minHashSignature[j], permutationFunctions.get(j).permute(hash));
+                }
+
+                minHashSignatures.put(minHashSignature);
+            }
+
+            return new MinHashMatrix(minHashSignatures, mDocumentHashes.size(), numPermutations, mArena);
+        }
+    }
+
+
     /**
      * A "permutation" function based on uinversal hashing. This is actually
      * just a hash function but this works for our purposes
@@ -243,6 +412,16 @@ public class MinHashMatrix {
         public int permute(int num) {
             return ((num * mScalar) + mConstant) % PRIME;
         }
+
+
+        /**
+         * Return permutation position of a given 64 bit hash
+         *
+         * @param num the hash to permute
+         */
+        public int permute(long num) {
+            return (int) (((num * mScalar) + mConstant) % PRIME);
+        }
     }
 
 }
@@ -0,0 +1,246 @@
+package edu.iastate.cs.dream_killer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Bump allocator handing out slices of large direct buffers. An arena is
+ * meant to live for a single submission group so that shingle hashes and
+ * signatures for the group stay outside of the Java heap and are released
+ * together once the group has been clustered. Closing the arena frees the
+ * native memory immediately rather than waiting for a garbage collection.
+ * Total arena memory is bounded by -XX:MaxDirectMemorySize, which defaults
+ * to the maximum heap size.
+ *
+ * @author Nick Gerleman
+ */
+public class OffHeapArena implements AutoCloseable {
+
+    /** Size of the slabs small allocations are carved from */
+    private static final int SLAB_SIZE = 4 * 1024 * 1024;
+
+    /** Alignment of every allocation, large enough for longs */
+    private static final int ALIGNMENT = Long.BYTES;
+
+    /** Whether buffers are freed through Unsafe.invokeCleaner (Java 9+) */
+    private static final boolean USE_INVOKE_CLEANER =
+            !System.getProperty("java.specification.version").startsWith("1.");
+
+    /** Unsafe instance used to free direct buffers, null if unavailable */
+    private static final Object UNSAFE;
+
+    /** Unsafe.invokeCleaner, null before Java 9 or if unavailable */
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        if (USE_INVOKE_CLEANER) {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                unsafe = theUnsafe.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Reported by free() so that allocation still works
+                unsafe = null;
+                invokeCleaner = null;
+            }
+        }
+
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /** Direct buffers owned by the arena, compared by identity */
+    private final Set<ByteBuffer> mSlabs;
+
+    /** Slab currently used for small allocations */
+    private ByteBuffer mCurrentSlab;
+
+    /** Whether the arena has been closed */
+    private boolean mClosed;
+
+
+    /**
+     * Construct a new, empty arena
+     */
+    public OffHeapArena() {
+        mSlabs = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+
+    /**
+     * Allocate a zeroed, native ordered region of off-heap memory
+     *
+     * @param numBytes the number of bytes to allocate
+     * @return a buffer covering exactly the allocated region
+     * @throws IllegalArgumentException if the size is negative or too large
+     * @throws IllegalStateException if the arena has been closed
+     */
+    public ByteBuffer allocate(long numBytes) {
+        int size = checkAllocationSize(numBytes);
+
+        // Large allocations get a dedicated buffer instead of wasting a slab
+        if (size > SLAB_SIZE / 2)
+            return newSlab(size);
+
+        int start = mCurrentSlab == null ? -1 : align(mCurrentSlab.position());
+        if (start < 0 || start + size > mCurrentSlab.capacity()) {
+            mCurrentSlab = newSlab(SLAB_SIZE);
+            start = 0;
+        }
+
+        mCurrentSlab.limit(start + size).position(start);
+        ByteBuffer region = mCurrentSlab.slice().order(ByteOrder.nativeOrder());
+        mCurrentSlab.limit(mCurrentSlab.capacity()).position(start + size);
+        return region;
+    }
+
+
+    /**
+     * Allocate a zeroed, native ordered buffer that can be released on its
+     * own before the arena is closed. Used for memory that is replaced over
+     * the lifetime of the arena, such as growing hash tables.
+     *
+     * @param numBytes the number of bytes to allocate
+     * @return the allocated buffer
+     * @throws IllegalArgumentException if the size is negative or too large
+     * @throws IllegalStateException if the arena has been closed
+     */
+    public ByteBuffer allocateDedicated(long numBytes) {
+        return newSlab(checkAllocationSize(numBytes));
+    }
+
+
+    /**
+     * Free a buffer from {@link #allocateDedicated(long)} immediately
+     *
+     * @param buffer the buffer to free
+     * @throws IllegalArgumentException if the buffer is not owned by the arena
+     * @throws IllegalStateException if the arena has been closed
+     */
+    public void release(ByteBuffer buffer) {
+        ensureOpen();
+        if (buffer == mCurrentSlab || !mSlabs.remove(buffer))
+            throw new IllegalArgumentException("Buffer was not allocated as a dedicated buffer");
+
+        free(buffer);
+    }
+
+
+    /**
+     * Make sure buffers allocated from the arena have not been freed
+     *
+     * @throws IllegalStateException if the arena has been closed
+     */
+    public void ensureOpen() {
+        if (mClosed)
+            throw new IllegalStateException("Arena has been closed");
+    }
+
+
+    /**
+     * Free every buffer owned by the arena. Buffers previously handed out
+     * must not be used afterwards. Every buffer is attempted even if freeing
+     * one of them fails.
+     *
+     * @throws IllegalStateException if any buffer could not be freed
+     */
+    @Override
+    public void close() {
+        if (mClosed)
+            return;
+
+        mClosed = true;
+        IllegalStateException failure = null;
+        for (ByteBuffer slab : mSlabs) {
+            try {
+                free(slab);
+            } catch (IllegalStateException e) {
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+
+        mSlabs.clear();
+        mCurrentSlab = null;
+
+        if (failure != null)
+            throw failure;
+    }
+
+
+    /**
+     * Validate the size of an allocation
+     *
+     * @param numBytes the requested number of bytes
+     * @return the number of bytes as an int
+     * @throws IllegalArgumentException if the size is negative or too large
+     * @throws IllegalStateException if the arena has been closed
+     */
+    private int checkAllocationSize(long numBytes) {
+        ensureOpen();
+        if (numBytes < 0 || numBytes > Integer.MAX_VALUE - ALIGNMENT)
+            throw new IllegalArgumentException("Invalid allocation size " + numBytes);
+
+        return (int) numBytes;
+    }
+
+
+    /**
+     * Reserve a new direct buffer and track it as part of the arena
+     *
+     * @param size the size of the buffer in bytes
+     * @return the new buffer
+     */
+    private ByteBuffer newSlab(int size) {
+        ByteBuffer slab = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        mSlabs.add(slab);
+        return slab;
+    }
+
+
+    /**
+     * Return the native memory of a direct buffer to the operating system
+     *
+     * @param buffer the buffer to free, which must not be a slice
+     * @throws IllegalStateException if the JVM does not allow freeing buffers
+     */
+    private static void free(ByteBuffer buffer) {
+        try {
+            if (USE_INVOKE_CLEANER) {
+                if (INVOKE_CLEANER == null)
+                    throw new UnsupportedOperationException("Unsafe.invokeCleaner is not accessible");
+
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new IllegalStateException("Unable to free off-heap buffer", e);
+        }
+    }
+
+
+    /**
+     * Round a slab offset up to the allocation alignment
+     *
+     * @param offset the offset to align
+     * @return the aligned offset
+     */
+    private static int align(int offset) {
+        return (offset + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+}
@@ -0,0 +1,233 @@
+package edu.iastate.cs.dream_killer;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Open addressing set of 64 bit shingle hashes stored in off-heap memory.
+ * Slot value zero marks an empty slot, so a hash of zero is tracked
+ * separately. The set is meant to be cleared and reused for every document in
+ * a group. The table is a dedicated arena buffer that is freed as soon as it
+ * is replaced, so it never holds more than one table's worth of memory.
+ *
+ * @author Nick Gerleman
+ */
+public class ShingleHashSet {
+
+    /** Initial number of slots, must be a power of two */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Tables sparser than one slot in this many are shrunk when cleared */
+    private static final int SHRINK_FACTOR = 8;
+
+    /** Zeroed block used to bulk clear slots */
+    private static final long[] ZERO_SLOTS = new long[1024];
+
+    /** Arena the table is allocated from */
+    private final OffHeapArena mArena;
+
+    /** Buffer backing the table, released when the table is replaced */
+    private ByteBuffer mTable;
+
+    /** Hash slots, zero when empty */
+    private LongBuffer mSlots;
+
+    /** Lowest slot written since the table was last cleared or replaced */
+    private int mFirstUsedSlot;
+
+    /** Highest slot written since the table was last cleared or replaced */
+    private int mLastUsedSlot;
+
+    /** Number of non-zero hashes in the slots */
+    private int mSize;
+
+    /** Whether the hash zero is part of the set */
+    private boolean mContainsZero;
+
+
+    /**
+     * Construct a new, empty set
+     *
+     * @param arena the arena to allocate slots from
+     */
+    public ShingleHashSet(OffHeapArena arena) {
+        mArena = arena;
+        allocateTable(INITIAL_CAPACITY);
+    }
+
+
+    /**
+     * Add a hash to the set
+     *
+     * @param hash the shingle hash
+     * @return true if the hash was not already present
+     * @throws IllegalStateException if the arena has been closed
+     */
+    public boolean add(long hash) {
+        mArena.ensureOpen();
+
+        if (hash == 0) {
+            boolean added = !mContainsZero;
+            mContainsZero = true;
+            return added;
+        }
+
+        if ((mSize + 1) * 4 > mSlots.capacity() * 3)
+            grow();
+
+        int slot = insert(mSlots, hash);
+        if (slot < 0)
+            return false;
+
+        markUsed(slot);
+        mSize++;
+        return true;
+    }
+
+
+    /**
+     * Get the number of distinct hashes in the set
+     *
+     * @return the number of hashes
+     */
+    public int size() {
+        return mSize + (mContainsZero ? 1 : 0);
+    }
+
+
+    /**
+     * Whether the set has no hashes
+     *
+     * @return true if the set is empty
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+
+    /**
+     * Copy every hash in the set into a buffer, in no particular order. Only
+     * the range of slots written since the last clear is scanned.
+     *
+     * @param destination the buffer to write into at its current position
+     * @throws IllegalStateException if the arena has been closed
+     */
+    public void copyTo(LongBuffer destination) {
+        mArena.ensureOpen();
+
+        if (mContainsZero)
+            destination.put(0);
+
+        for (int i = mFirstUsedSlot; i <= mLastUsedSlot; i++) {
+            long hash = mSlots.get(i);
+            if (hash != 0)
+                destination.put(hash);
+        }
+    }
+
+
+    /**
+     * Remove every hash from the set. A table left much larger than its
+     * contents by an unusually big document is replaced with a smaller one.
+     *
+     * @throws IllegalStateException if the arena has been closed
+     */
+    public void clear() {
+        mArena.ensureOpen();
+
+        if (mSlots.capacity() > INITIAL_CAPACITY && mSize * SHRINK_FACTOR < mSlots.capacity()) {
+            int capacity = INITIAL_CAPACITY;
+            while (capacity < mSize * 2)
+                capacity *= 2;
+
+            ByteBuffer oldTable = mTable;
+            allocateTable(capacity);
+            mArena.release(oldTable);
+        } else if (mSize > 0) {
+            mSlots.limit(mLastUsedSlot + 1).position(mFirstUsedSlot);
+            while (mSlots.hasRemaining())
+                mSlots.put(ZERO_SLOTS, 0, Math.min(ZERO_SLOTS.length, mSlots.remaining()));
+
+            mSlots.clear();
+            resetUsedSlots();
+        }
+
+        mSize = 0;
+        mContainsZero = false;
+    }
+
+
+    /**
+     * Double the number of slots and rehash the existing hashes
+     */
+    private void grow() {
+        LongBuffer oldSlots = mSlots;
+        ByteBuffer oldTable = mTable;
+        allocateTable(oldSlots.capacity() * 2);
+
+        for (int i = 0; i < oldSlots.capacity(); i++) {
+            long hash = oldSlots.get(i);
+            if (hash != 0)
+                markUsed(insert(mSlots, hash));
+        }
+
+        mArena.release(oldTable);
+    }
+
+
+    /**
+     * Insert a non-zero hash using linear probing
+     *
+     * @param slots the slots to insert into
+     * @param hash the hash to insert
+     * @return the slot the hash was written to, or -1 if already present
+     */
+    private static int insert(LongBuffer slots, long hash) {
+        int mask = slots.capacity() - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+
+        while (true) {
+            long existing = slots.get(slot);
+            if (existing == 0) {
+                slots.put(slot, hash);
+                return slot;
+            }
+            if (existing == hash)
+                return -1;
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+
+    /**
+     * Switch to a new, zeroed table. The caller releases the previous one.
+     *
+     * @param capacity the number of slots, a power of two
+     */
+    private void allocateTable(int capacity) {
+        mTable = mArena.allocateDedicated((long) capacity * Long.BYTES);
+        mSlots = mTable.asLongBuffer();
+        resetUsedSlots();
+    }
+
+
+    /**
+     * Widen the range of slots that are scanned and zeroed
+     *
+     * @param slot the slot that was written
+     */
+    private void markUsed(int slot) {
+        mFirstUsedSlot = Math.min(mFirstUsedSlot, slot);
+        mLastUsedSlot = Math.max(mLastUsedSlot, slot);
+    }
+
+
+    /**
+     * Mark every slot as untouched
+     */
+    private void resetUsedSlots() {
+        mFirstUsedSlot = mSlots.capacity();
+        mLastUsedSlot = -1;
+    }
+}